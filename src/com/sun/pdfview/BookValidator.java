@@ -0,0 +1,425 @@
+package com.sun.pdfview;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks a whole book up front, so that broken pages and branches to
+ * missing pages are found when the book is opened instead of when a reader
+ * gets to them.
+ * <p>
+ * Every page file, the cover included, is parsed, and its page's content
+ * is parsed and rendered at thumbnail size. Every branch file is read with
+ * the same parser the viewer uses. Files are checked in parallel across
+ * the cores. The result for
+ * each file is cached against its size and modification time, so opening an
+ * unchanged book again only checks that the pages branched to exist.
+ */
+public class BookValidator {
+
+    /** the size pages are rendered at to check they render */
+    private static final int CHECK_SIZE = 100;
+    /** the longest a single file may take to check */
+    private static final long CHECK_SECONDS = 20;
+    /** files shorter than this can't be PDFs, and some send the parser
+     *  into an endless loop looking for the trailer */
+    private static final int MIN_PDF_BYTES = 64;
+    /** how far into a file its PDF header may be */
+    private static final int HEADER_SEARCH_BYTES = 1024;
+    /** bumped when the checks change, so results cached before are redone */
+    private static final int CHECKS_VERSION = 2;
+    /** the name of the book's cover, which comes before its first page */
+    private static final String COVER = "cover.pdf";
+
+    /** the directory holding the book */
+    private final File bookDir;
+    /** the file the per-file results are cached in */
+    private final File cacheFile;
+
+    /**
+     * Create a new BookValidator.
+     * @param bookDir the directory holding the book
+     * @param cacheFile the file to cache results in, which needn't exist yet
+     */
+    public BookValidator(File bookDir, File cacheFile) {
+        this.bookDir = bookDir;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Check the book.
+     * @return a description of each problem found; empty if there are none
+     */
+    public List<String> validate() {
+        // page files and branch files, by page number
+        TreeMap<Integer, File> pdfs = new TreeMap<Integer, File>();
+        TreeMap<Integer, File> branches = new TreeMap<Integer, File>();
+        File[] files = bookDir.listFiles();
+        if (files == null) {
+            return Collections.singletonList("Can't read the book in " + bookDir);
+        }
+        for (File f : files) {
+            String name = f.getName();
+            int dot = name.lastIndexOf('.');
+            int page;
+            if (name.equals(COVER)) {
+                // the viewer treats the cover as the page before the first
+                pdfs.put(-1, f);
+                continue;
+            }
+            try {
+                page = Integer.parseInt(name.substring(0, Math.max(dot, 0)));
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            if (name.endsWith(".pdf")) {
+                pdfs.put(page, f);
+            } else if (name.endsWith(".txt")) {
+                branches.put(page, f);
+            }
+        }
+
+        Properties cache = loadCache();
+        // forget files that have gone
+        for (String name : cache.stringPropertyNames()) {
+            if (!new File(bookDir, name).exists()) {
+                cache.remove(name);
+            }
+        }
+        List<String> problems = new ArrayList<String>();
+        problems.addAll(checkFiles(pdfs.values(), cache));
+        problems.addAll(checkFiles(branches.values(), cache));
+        saveCache(cache);
+
+        // branches to pages that aren't there
+        for (Integer page : pdfs.keySet()) {
+            File branchFile = branches.get(page);
+            if (branchFile == null) {
+                int next = PDFViewer.getFollowingPage(bookDir, page);
+                if (!pdfs.containsKey(next) && page < pdfs.lastKey()) {
+                    problems.add(pdfs.get(page).getName() + " leads to " + next +
+                            ".pdf, which is missing, so the story ends early.");
+                }
+                continue;
+            }
+            for (int target : readTargets(branchFile)) {
+                if (!pdfs.containsKey(target)) {
+                    problems.add(branchFile.getName() + " branches to " + target +
+                            ".pdf, which is missing.");
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Check files in parallel, skipping the ones whose cached result is
+     * still good.
+     * @return the problems found
+     */
+    private List<String> checkFiles(Iterable<File> files, Properties cache) {
+        List<String> problems = new ArrayList<String>();
+        List<File> toCheck = new ArrayList<File>();
+        for (File f : files) {
+            String cached = cache.getProperty(f.getName());
+            String stamp = stamp(f);
+            if (cached != null && cached.startsWith(stamp)) {
+                String problem = cached.substring(stamp.length());
+                if (problem.length() > 0) {
+                    problems.add(problem);
+                }
+            } else {
+                toCheck.add(f);
+            }
+        }
+        if (toCheck.isEmpty()) {
+            return problems;
+        }
+
+        // daemon threads, since a check that hangs can't be stopped
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, BookValidator.class.getName() + ".worker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final File f : toCheck) {
+                results.add(pool.submit(new Callable<String>() {
+                    public String call() {
+                        return f.getName().endsWith(".pdf") ? checkPage(f) : checkBranches(f);
+                    }
+                }));
+            }
+            for (int i = 0; i < toCheck.size(); i++) {
+                File f = toCheck.get(i);
+                String problem;
+                try {
+                    problem = results.get(i).get(CHECK_SECONDS, TimeUnit.SECONDS);
+                } catch (ExecutionException ee) {
+                    problem = f.getName() + " couldn't be checked: " + ee.getCause();
+                } catch (TimeoutException te) {
+                    results.get(i).cancel(true);
+                    problem = f.getName() + " couldn't be checked: it took more than " +
+                            CHECK_SECONDS + " seconds.";
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return problems;
+                }
+                if (problem != null) {
+                    problems.add(problem);
+                }
+                cache.setProperty(f.getName(), stamp(f) + (problem == null ? "" : problem));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return problems;
+    }
+
+    /**
+     * Check that a page file parses and its first page renders. The page's
+     * content is parsed and rendered here rather than through
+     * {@link PDFPage#getImage}, which gives back an image however badly
+     * either goes.
+     * @return the problem, or null if there is none
+     */
+    private static String checkPage(File file) {
+        try {
+            if (!hasPDFHeader(file)) {
+                return file.getName() + " doesn't appear to be a PDF file.";
+            }
+            PDFFile pdf;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel ch = raf.getChannel();
+                pdf = new PDFFile(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } finally {
+                raf.close();
+            }
+            if (pdf.getNumPages() < 1) {
+                return file.getName() + " has no pages.";
+            }
+            PDFPage libPage = pdf.getPage(1, true);
+            if (libPage == null) {
+                return file.getName() + " has no readable first page.";
+            }
+
+            // parse the page's content ourselves, so we can see how it went
+            HashMap<String, PDFObject> resources = new HashMap<String, PDFObject>();
+            PDFObject pageObj = firstPage(pdf.getRoot().getDictRef("Pages"), resources);
+            if (pageObj == null) {
+                return file.getName() + " has no readable first page.";
+            }
+            PDFPage page = new PDFPage(libPage.getBBox(), libPage.getRotation());
+            PDFParser parser = new PDFParser(page, readContents(pageObj), resources);
+            parser.go(true);
+            if (parser.getStatus() == Watchable.ERROR ||
+                    parser.getStatus() == Watchable.STOPPED) {
+                return file.getName() + " has page content that doesn't parse.";
+            }
+
+            Dimension sz = page.getUnstretchedSize(CHECK_SIZE, CHECK_SIZE, null);
+            BufferedImage img = new BufferedImage(sz.width, sz.height,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            PDFRenderer renderer;
+            try {
+                renderer = new PDFRenderer(page, g,
+                        new Rectangle(0, 0, sz.width, sz.height), null, Color.white);
+                renderer.go(true);
+            } finally {
+                g.dispose();
+            }
+            if (renderer.getStatus() == Watchable.ERROR ||
+                    renderer.getStatus() == Watchable.STOPPED) {
+                return file.getName() + " doesn't render.";
+            }
+            return null;
+        } catch (Exception e) {
+            return file.getName() + " doesn't appear to be a PDF file: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Whether a file is long enough to be a PDF file and starts with a PDF
+     * header, which the parser doesn't check before looking for the trailer.
+     */
+    private static boolean hasPDFHeader(File file) throws IOException {
+        if (file.length() < MIN_PDF_BYTES) {
+            return false;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) Math.min(file.length(), HEADER_SEARCH_BYTES)];
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            return new String(bytes, 0, n, "ISO-8859-1").indexOf("%PDF-") >= 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the first page in a page tree, adding the resources each level
+     * down to it defines, so that inner ones replace inherited ones.
+     * @return the page, or null if the tree has no pages
+     */
+    private static PDFObject firstPage(PDFObject node,
+            HashMap<String, PDFObject> resources) throws IOException {
+        while (node != null) {
+            PDFObject res = node.getDictRef("Resources");
+            if (res != null) {
+                resources.putAll(res.getDictionary());
+            }
+            PDFObject kids = node.getDictRef("Kids");
+            if (kids == null) {
+                return node;
+            }
+            PDFObject[] array = kids.getArray();
+            node = array.length == 0 ? null : array[0];
+        }
+        return null;
+    }
+
+    /**
+     * Gets a page's content, joining the streams if there are several.
+     */
+    private static byte[] readContents(PDFObject pageObj) throws IOException {
+        PDFObject contents = pageObj.getDictRef("Contents");
+        if (contents == null) {
+            return new byte[0];
+        }
+        if (contents.getType() != PDFObject.ARRAY) {
+            return contents.getStream();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PDFObject stream : contents.getArray()) {
+            out.write(stream.getStream());
+            // streams may split anywhere between tokens
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Check that a branch file holds nothing but page numbers.
+     * @return the problem, or null if there is none
+     */
+    private static String checkBranches(File file) {
+        try {
+            String[] options = PDFViewer.readBranchOptions(file);
+            if (options.length == 0) {
+                return file.getName() + " doesn't list any pages.";
+            }
+            for (String option : options) {
+                try {
+                    Integer.parseInt(option);
+                } catch (NumberFormatException nfe) {
+                    return file.getName() + " lists \"" + option +
+                            "\", which isn't a page number.";
+                }
+            }
+            return null;
+        } catch (IOException ioe) {
+            return file.getName() + " can't be read: " + ioe.getMessage();
+        }
+    }
+
+    /**
+     * Gets the pages a branch file branches to, skipping anything that
+     * isn't a page number.
+     */
+    private static List<Integer> readTargets(File file) {
+        List<Integer> targets = new ArrayList<Integer>();
+        try {
+            for (String option : PDFViewer.readBranchOptions(file)) {
+                try {
+                    targets.add(Integer.parseInt(option));
+                } catch (NumberFormatException nfe) {
+                    // already reported by checkBranches
+                }
+            }
+        } catch (IOException ioe) {
+            // already reported by checkBranches
+        }
+        return targets;
+    }
+
+    /**
+     * Gets what a cached result for a file is checked against.
+     */
+    private static String stamp(File f) {
+        return CHECKS_VERSION + "," + f.length() + "," + f.lastModified() + ",";
+    }
+
+    private Properties loadCache() {
+        Properties cache = new Properties();
+        if (cacheFile.exists()) {
+            try {
+                InputStream in = new FileInputStream(cacheFile);
+                try {
+                    cache.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ioe) {
+                // start again from scratch
+                cache.clear();
+            }
+        }
+        return cache;
+    }
+
+    private void saveCache(Properties cache) {
+        try {
+            cacheFile.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(cacheFile);
+            try {
+                cache.store(out, "Book check results for " + bookDir.getAbsolutePath());
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            Logger.getLogger(BookValidator.class.getName()).log(Level.WARNING,
+                    "Couldn't save book check results " + cacheFile, ioe);
+        }
+    }
+}
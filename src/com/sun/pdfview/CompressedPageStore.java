@@ -0,0 +1,302 @@
+package com.sun.pdfview;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds rendered pages as run-length encoded pixels in direct (off-heap)
+ * memory, so that a whole book can stay resident without growing the Java
+ * heap. Each page lives in its own buffer laid out as
+ * <pre>
+ *   int width, int height, int rowOffset[height], row data...
+ * </pre>
+ * Every row is encoded on its own, so rows can be decoded in parallel.
+ * A row is a sequence of chunks, each starting with a control byte c:
+ * c &lt; 128 is a run of c + 1 copies of the following RGB triple, and
+ * c &gt;= 128 is c - 127 literal RGB triples.
+ * <p>
+ * Only opaque pixels are stored; alpha always decodes as fully opaque.
+ */
+public class CompressedPageStore {
+
+    /** the longest run or literal stretch a single chunk can hold */
+    private static final int MAX_CHUNK = 128;
+    /** the fewest rows worth handing to a decoder thread */
+    private static final int MIN_BAND = 64;
+
+    /** the most off-heap memory to use, in bytes; lowered if the JVM runs
+     *  out of direct memory before the store is full */
+    private long maxBytes;
+    /** the off-heap memory in use, in bytes */
+    private long usedBytes;
+    /** the stored pages, in access order */
+    private final Map<String, ByteBuffer> pages =
+            new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    /** guards the encoding scratch space */
+    private final Object encodeLock = new Object();
+    /** scratch space for encoding a row, reused across pages */
+    private byte[] rowScratch = new byte[0];
+    private int[] rgbScratch = new int[0];
+
+    /**
+     * Create a new CompressedPageStore. The budget is capped at half the
+     * maximum heap size, which is also the JVM's limit on direct memory
+     * unless it is set otherwise.
+     * @param maxBytes the most off-heap memory to use, in bytes
+     */
+    public CompressedPageStore(long maxBytes) {
+        this.maxBytes = Math.min(maxBytes, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * Whether a page is stored.
+     */
+    public synchronized boolean contains(String key) {
+        return pages.containsKey(key);
+    }
+
+    /**
+     * Compresses a page and stores it, evicting the least recently used
+     * pages if the store is full.
+     * @param key the page's key
+     * @param image the rendered page
+     * @return the keys of the pages evicted to make room
+     */
+    public List<String> put(String key, BufferedImage image) {
+        ByteBuffer encoded;
+        synchronized (encodeLock) {
+            // the scratch buffers are shared, so encoding is serialized
+            encoded = encode(image);
+        }
+        List<String> evicted = new ArrayList<String>();
+        int size = encoded.remaining();
+        synchronized (this) {
+            if (size > maxBytes) {
+                return evicted;
+            }
+        }
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError oome) {
+            // the JVM allows less direct memory than the budget; what is
+            // held now evidently fits, so make that the budget and make
+            // room within it
+            synchronized (this) {
+                maxBytes = usedBytes;
+                evict(size, evicted);
+            }
+            try {
+                buf = ByteBuffer.allocateDirect(size);
+            } catch (OutOfMemoryError again) {
+                return evicted;
+            }
+        }
+        buf.put(encoded);
+        buf.clear();
+        synchronized (this) {
+            ByteBuffer old = pages.put(key, buf);
+            if (old != null) {
+                usedBytes -= old.capacity();
+            }
+            usedBytes += buf.capacity();
+            evict(0, evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts the least recently used pages until there is room for a page
+     * of the given size. Called holding the lock.
+     * @param evicted the keys of the evicted pages are added to this
+     */
+    private void evict(int size, List<String> evicted) {
+        Iterator<Map.Entry<String, ByteBuffer>> it = pages.entrySet().iterator();
+        while (usedBytes + size > maxBytes && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> eldest = it.next();
+            usedBytes -= eldest.getValue().capacity();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+    }
+
+    /**
+     * Gets a stored page, decoded into a new RGB image.
+     * @return the page image, or null if it isn't stored
+     */
+    public BufferedImage get(String key) {
+        ByteBuffer buf;
+        synchronized (this) {
+            buf = pages.get(key);
+        }
+        if (buf == null) {
+            return null;
+        }
+        BufferedImage dst = new BufferedImage(buf.getInt(0), buf.getInt(4),
+                BufferedImage.TYPE_INT_RGB);
+        decode(buf, dst);
+        return dst;
+    }
+
+    /**
+     * Decodes a stored page into an existing image, so that repeated page
+     * turns at the same size don't allocate a new one.
+     * @param key the page's key
+     * @param dst the image to decode into, which must be the page's size
+     * @return false if the page isn't stored or the image is the wrong size
+     */
+    public boolean get(String key, BufferedImage dst) {
+        ByteBuffer buf;
+        synchronized (this) {
+            buf = pages.get(key);
+        }
+        if (buf == null || buf.getInt(0) != dst.getWidth() ||
+                buf.getInt(4) != dst.getHeight()) {
+            return false;
+        }
+        decode(buf, dst);
+        return true;
+    }
+
+    /**
+     * Encodes an image into a heap buffer, to be copied into a direct
+     * buffer once its size is known.
+     */
+    private ByteBuffer encode(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (rgbScratch.length < w) {
+            rgbScratch = new int[w];
+            rowScratch = new byte[w * 3 + (w + MAX_CHUNK - 1) / MAX_CHUNK];
+        }
+        // we can't know the compressed size up front
+        int header = 8 + 4 * h;
+        byte[] staging = new byte[Math.max(header, 4096)];
+        int len = header;
+        int[] offsets = new int[h];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, rgbScratch, 0, w);
+            int n = encodeRow(rgbScratch, w, rowScratch);
+            if (len + n > staging.length) {
+                byte[] grown = new byte[Math.max(staging.length * 2, len + n)];
+                System.arraycopy(staging, 0, grown, 0, len);
+                staging = grown;
+            }
+            System.arraycopy(rowScratch, 0, staging, len, n);
+            offsets[y] = len;
+            len += n;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(staging, 0, len);
+        buf.putInt(0, w).putInt(4, h);
+        for (int y = 0; y < h; y++) {
+            buf.putInt(8 + 4 * y, offsets[y]);
+        }
+        return buf;
+    }
+
+    /**
+     * Encodes a row of pixels.
+     * @return the number of bytes written to out
+     */
+    private static int encodeRow(int[] row, int w, byte[] out) {
+        int p = 0;
+        int x = 0;
+        while (x < w) {
+            int rgb = row[x];
+            int run = 1;
+            while (x + run < w && run < MAX_CHUNK && row[x + run] == rgb) {
+                run++;
+            }
+            if (run > 1) {
+                out[p++] = (byte) (run - 1);
+                p = putRGB(out, p, rgb);
+                x += run;
+            } else {
+                // gather literals until the next run of two or more
+                int start = x;
+                int n = 0;
+                while (x < w && n < MAX_CHUNK &&
+                        (x + 1 == w || row[x] != row[x + 1])) {
+                    x++;
+                    n++;
+                }
+                out[p++] = (byte) (n + 127);
+                for (int i = start; i < start + n; i++) {
+                    p = putRGB(out, p, row[i]);
+                }
+            }
+        }
+        return p;
+    }
+
+    private static int putRGB(byte[] out, int p, int rgb) {
+        out[p++] = (byte) (rgb >> 16);
+        out[p++] = (byte) (rgb >> 8);
+        out[p++] = (byte) rgb;
+        return p;
+    }
+
+    /**
+     * Decodes a page into an image, splitting the rows into bands across
+     * the image workers.
+     */
+    private static void decode(final ByteBuffer buf, final BufferedImage dst) {
+        ImageWorkers.runBands(buf.getInt(4), MIN_BAND, new ImageWorkers.Band() {
+            public void run(int from, int to) {
+                decodeRows(buf, dst, from, to);
+            }
+        });
+    }
+
+    /**
+     * Decodes a band of rows. Images backed by a plain int array are written
+     * directly; anything else goes through setRGB a row at a time.
+     */
+    private static void decodeRows(ByteBuffer buf, BufferedImage dst, int from, int to) {
+        int w = buf.getInt(0);
+        int type = dst.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            int[] data = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+            for (int y = from; y < to; y++) {
+                decodeRow(buf, buf.getInt(8 + 4 * y), w, data, y * w);
+            }
+        } else {
+            int[] row = new int[w];
+            for (int y = from; y < to; y++) {
+                decodeRow(buf, buf.getInt(8 + 4 * y), w, row, 0);
+                dst.setRGB(0, y, w, 1, row, 0, w);
+            }
+        }
+    }
+
+    /**
+     * Decodes a single row of pixels.
+     * @param p the position of the row data in the buffer
+     */
+    private static void decodeRow(ByteBuffer buf, int p, int w, int[] dst, int off) {
+        int end = off + w;
+        while (off < end) {
+            int c = buf.get(p++) & 0xff;
+            if (c < MAX_CHUNK) {
+                int rgb = 0xff000000 | (buf.get(p) & 0xff) << 16 |
+                        (buf.get(p + 1) & 0xff) << 8 | (buf.get(p + 2) & 0xff);
+                p += 3;
+                for (int n = c + 1; n > 0; n--) {
+                    dst[off++] = rgb;
+                }
+            } else {
+                for (int n = c - 127; n > 0; n--) {
+                    dst[off++] = 0xff000000 | (buf.get(p) & 0xff) << 16 |
+                            (buf.get(p + 1) & 0xff) << 8 | (buf.get(p + 2) & 0xff);
+                    p += 3;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.sun.pdfview;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A shared pool of threads for pixel work that splits an image into bands
+ * of rows, one band per core.
+ */
+final class ImageWorkers {
+
+    /**
+     * The work done on one band of rows.
+     */
+    interface Band {
+        /**
+         * Process rows from (inclusive) to to (exclusive).
+         */
+        void run(int from, int to);
+    }
+
+    /** the number of worker threads */
+    private static final int nWorkers = Runtime.getRuntime().availableProcessors();
+
+    /** the worker threads */
+    private static final ExecutorService workers =
+            Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, ImageWorkers.class.getName() + ".worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private ImageWorkers() {
+    }
+
+    /**
+     * Splits rows into bands and runs them across the workers, returning
+     * once all of them are done. Small jobs run on the calling thread.
+     * @param rows the number of rows
+     * @param minBand the fewest rows worth handing to another thread
+     * @param band the work to do on each band
+     */
+    static void runBands(int rows, int minBand, final Band band) {
+        int bands = Math.min(nWorkers, Math.max(1, rows / minBand));
+        if (bands == 1) {
+            band.run(0, rows);
+            return;
+        }
+        int bandHeight = (rows + bands - 1) / bands;
+        // rounding the band height up can leave fewer bands than asked for
+        bands = (rows + bandHeight - 1) / bandHeight;
+        final CountDownLatch done = new CountDownLatch(bands);
+        for (int y0 = 0; y0 < rows; y0 += bandHeight) {
+            final int from = y0;
+            final int to = Math.min(rows, y0 + bandHeight);
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        band.run(from, to);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
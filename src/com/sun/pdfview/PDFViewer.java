@@ -18,6 +18,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,8 +53,28 @@ public class PDFViewer extends JFrame implements KeyListener {
     FullScreenWindow fullScreen;
     /** the document menu */
     JMenu docMenu;
+    /** the rendered pages kept around for going back, with the whole book
+     *  held compressed off-heap behind the most recent few, as far as the
+     *  JVM's direct memory allows */
+    PageImageCache imageCache = new PageImageCache(8, true,
+            new CompressedPageStore(256L << 20));
     /** the path through the story thus far */
     Deque<Integer> storyPath = new ArrayDeque<Integer>();
+    /** PDF files parsed ahead by the warmer, by absolute path. A file is
+     *  taken out when it is opened, so none of these hold the renders the
+     *  library caches for pages that have been shown. */
+    private Map<String, PDFFile> parsedFiles =
+            new LinkedHashMap<String, PDFFile>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, PDFFile> eldest) {
+            return size() > 8;
+        }
+    };
+    /** the reading log for the current book, or null before one is opened */
+    ReadingLog readingLog;
+    /** the book directory readingLog belongs to */
+    private File readingLogDir;
+    /** renders the likely next pages while the reader is reading */
+    PageWarmer warmer = new PageWarmer(this);
 
     /**
      * Create a new PDFViewer 
@@ -71,6 +94,7 @@ public class PDFViewer extends JFrame implements KeyListener {
      */
     protected void init() {
         page = new PagePanel();
+        page.setImageCache(imageCache);
         page.addKeyListener(this);
         getContentPane().add(page, BorderLayout.CENTER);
         JMenuBar mb = new JMenuBar();
@@ -114,16 +138,35 @@ public class PDFViewer extends JFrame implements KeyListener {
     public void gotoPage(int pagenum) {
         // Fetch the page and show it in the appropriate place
         PDFPage pg = curFile.getPage(pagenum + 1);
+        String name = pageName(file, pagenum);
         if (fsPage != null) {
-            fsPage.showPage(pg);
+            fsPage.showPage(pg, name);
             fsPage.requestFocus();
         } else {
-            page.showPage(pg);
+            page.showPage(pg, name);
             page.requestFocus();
         }
         setEnabling();
     }
 
+    /**
+     * Gets the name a page is known by in the image cache.
+     * @param file the PDF file
+     * @param pagenum the page in the file
+     */
+    static String pageName(File file, int pagenum) {
+        return fileKey(file) + "#" + pagenum;
+    }
+
+    /**
+     * Gets the key a file is cached under. The same file may be reached
+     * through a relative path by the viewer and an absolute one by the
+     * {@link PageWarmer}, so the key is always the absolute path.
+     */
+    private static String fileKey(File file) {
+        return file.getAbsolutePath();
+    }
+
     /**
      * Enable or disable all of the actions based on the current state.
      */
@@ -141,6 +184,11 @@ public class PDFViewer extends JFrame implements KeyListener {
      * @throws IOException
      */
     public void openFile(File file) throws IOException {
+        PDFFile parsed = takeParsedFile(file);
+        if (parsed != null) {
+            showPDFFile(parsed, file);
+            return;
+        }
         // First open the file for random access
         RandomAccessFile raf = new RandomAccessFile(file, "r");
         try {
@@ -170,6 +218,16 @@ public class PDFViewer extends JFrame implements KeyListener {
                       "\n: " + ioe.getMessage ());
             return;
         }
+        showPDFFile(newfile, file);
+    }
+
+    /**
+     * Make a parsed PDFFile the current document and show its first page.
+     *
+     * @param newfile
+     * @param file
+     */
+    private void showPDFFile(PDFFile newfile, File file) {
         // Now that we're sure this document is real, close the old one.
         doClose();
         // Set up our document
@@ -179,6 +237,179 @@ public class PDFViewer extends JFrame implements KeyListener {
         setEnabling();
         // Display the 1st page
         gotoPage(0);
+        // Get the pages likely to be read next ready
+        File bookDir = file.getAbsoluteFile().getParentFile();
+        if (readingLog == null || !bookDir.equals(readingLogDir)) {
+            readingLog = new ReadingLog(ReadingLog.forBook(bookDir));
+            readingLogDir = bookDir;
+            // a new book, so check all of it before the reader gets far
+            Thread check = new Thread(new PerformBookCheck(bookDir),
+                    getClass().getName() + ".checkBook");
+            check.setDaemon(true);
+            check.start();
+        }
+        warmer.pageShown(bookDir, getPageNumber(), readingLog);
+    }
+
+    /**
+     * Gets a file for keeping data about a book, under the user's home
+     * directory since the book itself may be read-only.
+     * @param bookDir the directory holding the book's pages
+     * @param suffix the suffix for the kind of data, such as ".log"
+     */
+    static File getBookDataFile(File bookDir, String suffix) {
+        File dir = new File(System.getProperty("user.home"), ".gyoa");
+        String path = bookDir.getAbsolutePath();
+        return new File(dir, bookDir.getName() + "-" +
+                Integer.toHexString(path.hashCode()) + suffix);
+    }
+
+    /**
+     * Checks a whole book in another thread, and reports any problems
+     * found in one dialog.
+     */
+    class PerformBookCheck implements Runnable {
+
+        private final File bookDir;
+
+        PerformBookCheck(File bookDir) {
+            this.bookDir = bookDir;
+        }
+
+        public void run() {
+            BookValidator validator = new BookValidator(bookDir,
+                    getBookDataFile(bookDir, ".check"));
+            final List<String> problems = validator.validate();
+            if (problems.isEmpty()) {
+                return;
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    showBookProblems(problems);
+                }
+            });
+        }
+    }
+
+    /**
+     * Display a dialog listing the problems found in a book.
+     */
+    private void showBookProblems(List<String> problems) {
+        StringBuilder sb = new StringBuilder("Some pages of this book have problems:\n");
+        int shown = Math.min(problems.size(), 20);
+        for (int i = 0; i < shown; i++) {
+            sb.append("\n").append(problems.get(i));
+        }
+        if (problems.size() > shown) {
+            sb.append("\n...and ").append(problems.size() - shown).append(" more.");
+        }
+        JOptionPane.showMessageDialog(this, sb.toString(), "Problems in book",
+                JOptionPane.WARNING_MESSAGE);
+    }
+
+    /**
+     * Takes a PDF file parsed earlier, so that nothing else uses it while
+     * the caller does.
+     * @return the parsed file, or null if it hasn't been parsed lately
+     */
+    private synchronized PDFFile takeParsedFile(File file) {
+        return parsedFiles.remove(fileKey(file));
+    }
+
+    private synchronized void putParsedFile(File file, PDFFile pdf) {
+        parsedFiles.put(fileKey(file), pdf);
+    }
+
+    /**
+     * Parses a PDF file and renders its first page into the image cache
+     * at the size it would be shown, unless that has been done already.
+     * The parsed file is only kept for opening once the render is done.
+     * Called off the event dispatch thread by the {@link PageWarmer}.
+     *
+     * @param file the PDF file
+     * @return true if the file had to be parsed or its page rendered,
+     * false if both had been done already
+     * @throws IOException if the file can't be read or parsed
+     */
+    boolean prefetch(File file) throws IOException {
+        boolean worked = false;
+        PDFFile pdf = takeParsedFile(file);
+        if (pdf == null) {
+            worked = true;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel ch = raf.getChannel();
+                pdf = new PDFFile(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } finally {
+                raf.close();
+            }
+        }
+        PagePanel panel = fsPage;
+        if (panel == null) {
+            panel = page;
+        }
+        try {
+            if (panel.prefetchPage(pdf.getPage(1, true), pageName(file, 0))) {
+                worked = true;
+            }
+        } finally {
+            putParsedFile(file, pdf);
+        }
+        return worked;
+    }
+
+    /**
+     * Gets the page that follows a page with no branch file: the next
+     * page, or for the cover, the lowest numbered page of the book.
+     *
+     * @param dir the directory holding the book
+     * @param pageNumb the page number, or -1 for the cover
+     */
+    static int getFollowingPage(File dir, int pageNumb) {
+        if (pageNumb >= 0) {
+            return pageNumb + 1;
+        }
+        int first = -1;
+        String[] names = dir == null ? null : dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(".pdf")) {
+                    continue;
+                }
+                try {
+                    int n = Integer.parseInt(name.substring(0, name.length() - 4));
+                    if (n >= 0 && (first < 0 || n < first)) {
+                        first = n;
+                    }
+                } catch (NumberFormatException nfe) {
+                    // not a page, such as the cover
+                }
+            }
+        }
+        return first < 0 ? 0 : first;
+    }
+
+    /**
+     * Gets the pages the reader can go to from a page: the ones listed in
+     * its branch file if it has one that isn't blank, or else just the
+     * {@link #getFollowingPage following page}.
+     *
+     * @param dir the directory holding the book
+     * @param pageNumb the page number
+     * @throws IOException if the branch file can't be read
+     */
+    int[] getNextPages(File dir, int pageNumb) throws IOException {
+        File branchFile = new File(dir, "" + pageNumb + ".txt");
+        String[] options = branchFile.exists() ?
+                readBranchOptions(branchFile) : new String[0];
+        if (options.length == 0) {
+            return new int[] { getFollowingPage(dir, pageNumb) };
+        }
+        int[] pages = new int[options.length];
+        for (int i = 0; i < options.length; i++) {
+            pages[i] = Integer.parseInt(options[i]);
+        }
+        return pages;
     }
 
     /**
@@ -279,19 +510,26 @@ public class PDFViewer extends JFrame implements KeyListener {
      * @throws IOException
      */
     public void doNextDocument() throws IOException {
-    	int pageNumb = getPageNumber();
-    	int nextPageNumb = pageNumb + 1;
+    	final int pageNumb = getPageNumber();
     	// If there is a text file with the same name, load it and 
     	// let the user decide where to jump to next.
     	File branchFile = new File(file.getParentFile(), "" + pageNumb + ".txt");
-    	if (branchFile.exists()) {
-    		String[] pageOptions = readBranchOptions(branchFile);
-    		boolean tempSwitch = false;
-    		// In full screen mode we cannot display JOptionPanes (since they are windows).
-    		// As a workaround we temporarily disable full screen mode.
-    		if (fullScreen != null) {
-    			setFullScreenMode(false);
-    			tempSwitch = true;
+    	String[] pageOptions = branchFile.exists() ?
+    			readBranchOptions(branchFile) : new String[0];
+    	if (pageOptions.length > 0) {
+    		// In full screen mode we cannot display JOptionPanes (since they are windows),
+    		// so the choices are drawn over the page instead.
+    		if (fsPage != null) {
+    			fsPage.showChoices(pageOptions, new PagePanel.ChoiceListener() {
+    				public void choiceMade(String choice) {
+    					try {
+    						gotoNextDocument(pageNumb, Integer.parseInt(choice));
+    					} catch (IOException e) {
+    						e.printStackTrace();
+    					}
+    				}
+    			});
+    			return;
     		}
     		String nextPage = (String)JOptionPane.showInputDialog(this, 
     				"Select which page to jump to next:", 
@@ -303,46 +541,68 @@ public class PDFViewer extends JFrame implements KeyListener {
     		if (nextPage == null) {
     			return;
     		}
-    		nextPageNumb = Integer.parseInt(nextPage);
-    		if (tempSwitch) {
-    			setFullScreenMode(true);
-    		}
+    		gotoNextDocument(pageNumb, Integer.parseInt(nextPage));
+    	} else {
+    		gotoNextDocument(pageNumb, getFollowingPage(file.getParentFile(), pageNumb));
     	}
+    }
+
+    /**
+     * Loads the PDF document for the page chosen to follow the current one,
+     * or says the story has ended if there isn't one, leaving full screen
+     * mode first.
+     * 
+     * @param pageNumb the current page number
+     * @param nextPageNumb the page number to go to
+     * @throws IOException
+     */
+    private void gotoNextDocument(int pageNumb, int nextPageNumb) throws IOException {
     	File nextFile = new File(file.getParentFile(), "" + nextPageNumb + ".pdf");
     	if (nextFile.exists()) {
     		openFile(nextFile);
+    		readingLog.record(pageNumb, nextPageNumb);
     		// Remember where we came from, so we can backtrack
     		storyPath.addFirst(pageNumb);
     		prevPageAction.setEnabled(true);
     	} else {
+    		// Full screen mode cannot display JOptionPanes, and with the
+    		// story over there is nothing more to read in it anyway.
+    		if (fullScreen != null) {
+    			setFullScreenMode(false);
+    		}
     		JOptionPane.showMessageDialog(this, "The end!");
     	}
     }
     
     /**
-     * Reads space separated numbers from the file.
+     * Reads whitespace separated numbers from the file.
      * The numbers represent the different branching options that the user
-     * has for the current page.
+     * has for the current page. The viewer and the {@link BookValidator}
+     * both read branch files with this, so they agree on what a file says.
      * 
      * @param file
-     * @return
-     * @throws IOException
+     * @return the options, with no empty ones; empty if the file is blank
      */
-    private String[] readBranchOptions(File file) throws IOException {
+    static String[] readBranchOptions(File file) throws IOException {
     	FileInputStream fis = null;
-    	String[] options = null;
     	try {
 			fis = new FileInputStream(file);
 			byte[] bytes = new byte[(int)file.length()];
-			fis.read(bytes);
-			String content = new String(bytes, "ASCII");
-			options = content.split(" ");
+			int n = 0;
+			while (n < bytes.length) {
+				int read = fis.read(bytes, n, bytes.length - n);
+				if (read < 0) {
+					break;
+				}
+				n += read;
+			}
+			String content = new String(bytes, 0, n, "ASCII").trim();
+			return content.length() == 0 ? new String[0] : content.split("\\s+");
 		} finally {
 			if (fis != null) {
 				fis.close();
 			}
 		}
-    	return options;
     }
     
     public void doPrevDocument() throws IOException {
@@ -380,6 +640,7 @@ public class PDFViewer extends JFrame implements KeyListener {
 
         public void run() {
             fsPage = new PagePanel();
+            fsPage.setImageCache(imageCache);
             fsPage.setBackground(Color.black);
             page.showPage(null);
             fullScreen = new FullScreenWindow(fsPage);
@@ -416,6 +677,10 @@ public class PDFViewer extends JFrame implements KeyListener {
      * Handle a key press for navigation
      */
     public void keyPressed(KeyEvent evt) {
+        if (evt.isConsumed() || (fsPage != null && fsPage.isShowingChoices())) {
+            // the page panel has the keyboard until a choice is made
+            return;
+        }
         int code = evt.getKeyCode();
         if (code == KeyEvent.VK_SPACE) {
         	try {
@@ -0,0 +1,262 @@
+package com.sun.pdfview;
+
+import java.awt.Dimension;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the most recently rendered pages around so that going back to a
+ * page doesn't mean rendering it again. Pages are keyed by name, size and
+ * clip, and are evicted least recently used first.
+ * <p>
+ * An optional {@link CompressedPageStore} behind the heap cache holds
+ * every page added, compressed and off-heap, so that pages evicted from
+ * the heap can still be shown without rendering them again.
+ * <p>
+ * A page asked for at a size it hasn't been rendered at can be scaled down
+ * from a larger render of it with {@link #getScaled}.
+ */
+public class PageImageCache {
+
+    /** the number of pages to keep */
+    private final int maxPages;
+    /** whether pages with few enough colours are stored indexed */
+    private final boolean compact;
+    /** the cached pages, in access order */
+    private final Map<String, BufferedImage> images;
+    /** the compressed off-heap tier, or null if there isn't one */
+    private final CompressedPageStore store;
+    /** guards scaleSource */
+    private final Object scaleLock = new Object();
+    /** reused to decode the render a smaller size is scaled down from */
+    private BufferedImage scaleSource;
+    /** the largest size each page and clip has been cached at */
+    private final Map<String, Dimension> largest = new HashMap<String, Dimension>();
+    /** adds the pages handed to putLater, one at a time */
+    private final ExecutorService putter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, PageImageCache.class.getName() + ".putter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Create a new PageImageCache, optionally backed by a compressed
+     * off-heap tier.
+     * @param maxPages the number of pages to keep on the heap
+     * @param compact true to store heap pages with at most 256 colours indexed
+     * @param store the compressed tier, or null for none
+     */
+    public PageImageCache(int maxPages, boolean compact, CompressedPageStore store) {
+        this.maxPages = maxPages;
+        this.store = store;
+        this.compact = compact;
+        this.images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                if (size() <= PageImageCache.this.maxPages) {
+                    return false;
+                }
+                if (PageImageCache.this.store == null ||
+                        !PageImageCache.this.store.contains(eldest.getKey())) {
+                    forget(eldest.getKey());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Builds the cache key for a page rendered at a given size and clip.
+     * @param name the name identifying the page, such as its file path
+     * @param size the size of the rendered image
+     * @param clip the clip in page space, or null for the whole page
+     */
+    public static String key(String name, Dimension size, Rectangle2D clip) {
+        return key(base(name, clip), size);
+    }
+
+    /**
+     * Builds the part of the key that doesn't depend on the size.
+     */
+    private static String base(String name, Rectangle2D clip) {
+        StringBuilder sb = new StringBuilder(name);
+        if (clip != null) {
+            sb.append('[').append(clip.getX()).append(',').append(clip.getY())
+              .append(',').append(clip.getWidth()).append(',')
+              .append(clip.getHeight()).append(']');
+        }
+        return sb.toString();
+    }
+
+    private static String key(String base, Dimension size) {
+        return base + '@' + size.width + 'x' + size.height;
+    }
+
+    /**
+     * Gets a cached page, decoding it into an image the caller no longer
+     * needs if it has to come from the compressed tier.
+     * @param key the key from {@link #key}
+     * @param reuse an image to decode into, or null to allocate one; it is
+     * only used if it is the page's size
+     * @return the page image, which is reuse if that was decoded into, or
+     * null if it isn't cached
+     */
+    public BufferedImage get(String key, BufferedImage reuse) {
+        synchronized (this) {
+            BufferedImage image = images.get(key);
+            if (image != null || store == null) {
+                return image;
+            }
+        }
+        // pages decoded from the compressed tier go straight to the
+        // caller; putting them back on the heap would only evict others
+        if (reuse != null && store.get(key, reuse)) {
+            return reuse;
+        }
+        return store.get(key);
+    }
+
+    /**
+     * Gets a cached page at the given size, scaling it down from a larger
+     * cached render of the same page and clip if it hasn't been rendered at
+     * that size. The page is decoded or scaled into an image the caller no
+     * longer needs rather than a new one where possible.
+     * @param name the name identifying the page
+     * @param size the size wanted
+     * @param clip the clip in page space, or null for the whole page
+     * @param reuse a TYPE_INT_RGB image to fill, or null to allocate one;
+     * it is only used if it is the size wanted
+     * @return the page image, which is reuse if that was filled, or null if
+     * there's no render it can be made from
+     */
+    public BufferedImage getScaled(String name, Dimension size, Rectangle2D clip,
+            BufferedImage reuse) {
+        if (reuse != null && (reuse.getWidth() != size.width ||
+                reuse.getHeight() != size.height ||
+                reuse.getType() != BufferedImage.TYPE_INT_RGB)) {
+            reuse = null;
+        }
+        String base = base(name, clip);
+        BufferedImage image = get(key(base, size), reuse);
+        if (image != null) {
+            return image;
+        }
+        Dimension big;
+        synchronized (this) {
+            big = largest.get(base);
+        }
+        if (big == null || big.width < size.width || big.height < size.height) {
+            return null;
+        }
+        synchronized (scaleLock) {
+            if (scaleSource != null && (scaleSource.getWidth() != big.width ||
+                    scaleSource.getHeight() != big.height)) {
+                scaleSource = null;
+            }
+            BufferedImage src = get(key(base, big), scaleSource);
+            if (src == null) {
+                synchronized (this) {
+                    // it's been evicted from both tiers
+                    if (big.equals(largest.get(base))) {
+                        largest.remove(base);
+                    }
+                }
+                return null;
+            }
+            if (src.getType() == BufferedImage.TYPE_INT_RGB && !isOnHeap(src)) {
+                // decoded from the compressed tier, so ours to reuse
+                scaleSource = src;
+            }
+            if (reuse == null) {
+                return PageScaler.scale(src, size.width, size.height);
+            }
+            PageScaler.scale(src, reuse);
+            return reuse;
+        }
+    }
+
+    /**
+     * Whether an image is one of the pages held on the heap.
+     */
+    private synchronized boolean isOnHeap(BufferedImage image) {
+        return images.containsValue(image);
+    }
+
+    /**
+     * Whether a page is cached in either tier.
+     */
+    public boolean contains(String key) {
+        synchronized (this) {
+            if (images.containsKey(key)) {
+                return true;
+            }
+        }
+        return store != null && store.contains(key);
+    }
+
+    /**
+     * Adds a fully rendered page to the cache.
+     * @param key the key from {@link #key}
+     * @param image the rendered page
+     */
+    public void put(String key, BufferedImage image) {
+        // convert outside the lock, it touches every pixel
+        BufferedImage stored = compact ? PageImages.compact(image) : image;
+        synchronized (this) {
+            images.put(key, stored);
+            String base = key.substring(0, key.lastIndexOf('@'));
+            Dimension big = largest.get(base);
+            if (big == null || (long) big.width * big.height <
+                    (long) image.getWidth() * image.getHeight() ||
+                    !images.containsKey(key(base, big)) &&
+                    (store == null || !store.contains(key(base, big)))) {
+                largest.put(base, new Dimension(image.getWidth(), image.getHeight()));
+            }
+        }
+        if (store != null) {
+            for (String evicted : store.put(key, image)) {
+                synchronized (this) {
+                    if (!images.containsKey(evicted)) {
+                        forget(evicted);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a fully rendered page to the cache on a thread of the cache's
+     * own, for callers such as the event dispatch thread that shouldn't
+     * wait while the page is compacted and compressed. Until it has been
+     * added the page is a cache miss.
+     * @param key the key from {@link #key}
+     * @param image the rendered page, which mustn't change afterwards
+     */
+    public void putLater(final String key, final BufferedImage image) {
+        putter.execute(new Runnable() {
+            public void run() {
+                put(key, image);
+            }
+        });
+    }
+
+    /**
+     * Stop tracking a page as the largest render of its page and clip,
+     * once it is in neither tier. Called holding the lock.
+     */
+    private void forget(String key) {
+        String base = key.substring(0, key.lastIndexOf('@'));
+        Dimension big = largest.get(base);
+        if (big != null && key(base, big).equals(key)) {
+            largest.remove(base);
+        }
+    }
+}
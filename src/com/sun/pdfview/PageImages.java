@@ -0,0 +1,184 @@
+package com.sun.pdfview;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Conversions between the images produced by the PDF renderer and the
+ * forms we keep around for display and storage.
+ */
+public final class PageImages {
+
+    /** the largest palette an indexed image can hold */
+    private static final int MAX_COLORS = 256;
+
+    private PageImages() {
+    }
+
+    /**
+     * Copies an image into a surface that matches the screen's pixel layout,
+     * so that painting it is a straight blit without a format conversion.
+     * @param src the image to copy
+     * @param gc the configuration to match, or null for the default screen
+     * @return a compatible copy of the image
+     */
+    public static BufferedImage toCompatible(Image src, GraphicsConfiguration gc) {
+        if (gc == null) {
+            if (GraphicsEnvironment.isHeadless()) {
+                return toBuffered(src);
+            }
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        if (src instanceof BufferedImage &&
+                gc.getColorModel().equals(((BufferedImage) src).getColorModel())) {
+            // already in the screen's layout
+            return (BufferedImage) src;
+        }
+        int w = src.getWidth(null);
+        int h = src.getHeight(null);
+        BufferedImage dst = gc.createCompatibleImage(w, h);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.drawImage(src, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * Converts an image into an indexed image if that holds its pixels
+     * losslessly. Pages using at most 256 distinct opaque colours
+     * (black-and-white text, greyscale line art) become 1, 2, 4 or 8-bit
+     * indexed images, a quarter to a thirty-second of their packed size.
+     * Anything else is left as it is: a packed 3-byte RGB copy would only
+     * save a quarter, and would have to be copied back into the screen's
+     * layout every time it was shown.
+     * @param src the image to convert
+     * @return the indexed image, or src if it can't be indexed
+     */
+    public static BufferedImage compact(BufferedImage src) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        if (w == 0 || h == 0) {
+            return src;
+        }
+        int[] row = new int[w];
+        int[] palette = new int[MAX_COLORS];
+        // open-addressed table from colour to palette index; twice the
+        // palette size keeps probe chains short
+        int[] slots = new int[MAX_COLORS * 2];
+        int count = 0;
+        boolean indexed = true;
+        for (int y = 0; y < h && indexed; y++) {
+            src.getRGB(0, y, w, 1, row, 0, w);
+            int last = ~row[0];
+            for (int x = 0; x < w; x++) {
+                int rgb = row[x];
+                if (rgb == last) {
+                    continue;
+                }
+                last = rgb;
+                if ((rgb >>> 24) != 0xff) {
+                    // translucent pixels can't go into an opaque palette
+                    return src;
+                }
+                if (lookup(slots, palette, rgb) < 0) {
+                    if (count == MAX_COLORS) {
+                        indexed = false;
+                        break;
+                    }
+                    palette[count] = rgb;
+                    insert(slots, rgb, count++);
+                }
+            }
+        }
+        if (!indexed) {
+            return src;
+        }
+        int bits = count <= 2 ? 1 : count <= 4 ? 2 : count <= 16 ? 4 : 8;
+        IndexColorModel icm = new IndexColorModel(bits, count,
+                palette, 0, false, -1, DataBufferByte.TYPE_BYTE);
+        BufferedImage dst = new BufferedImage(w, h, bits == 8 ?
+                BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, icm);
+        byte[] data = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+        int stride = (w * bits + 7) / 8;
+        int perByte = 8 / bits;
+        for (int y = 0; y < h; y++) {
+            src.getRGB(0, y, w, 1, row, 0, w);
+            int base = y * stride;
+            int last = ~row[0];
+            int index = 0;
+            for (int x = 0; x < w; x++) {
+                int rgb = row[x];
+                if (rgb != last) {
+                    last = rgb;
+                    index = lookup(slots, palette, rgb);
+                }
+                // pixels are packed from the high bits down
+                int shift = 8 - bits * (x % perByte + 1);
+                data[base + x / perByte] |= (byte) (index << shift);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Gets a BufferedImage view of an image, copying it only if needed.
+     */
+    static BufferedImage toBuffered(Image src) {
+        if (src instanceof BufferedImage) {
+            return (BufferedImage) src;
+        }
+        BufferedImage dst = new BufferedImage(src.getWidth(null),
+                src.getHeight(null), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.drawImage(src, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * Finds the palette index of a colour.
+     * @return the index, or -1 if the colour isn't in the palette yet
+     */
+    private static int lookup(int[] slots, int[] palette, int rgb) {
+        int mask = slots.length - 1;
+        for (int i = hash(rgb) & mask; ; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return -1;
+            }
+            if (palette[slot - 1] == rgb) {
+                return slot - 1;
+            }
+        }
+    }
+
+    /**
+     * Records the palette index of a colour. Slots hold index + 1 so that
+     * zero marks an empty slot.
+     */
+    private static void insert(int[] slots, int rgb, int index) {
+        int mask = slots.length - 1;
+        int i = hash(rgb) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = index + 1;
+    }
+
+    private static int hash(int rgb) {
+        int h = rgb * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -20,16 +20,27 @@
  */
 package com.sun.pdfview;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
  * A Swing-based panel that displays a PDF page image. 
@@ -39,6 +50,24 @@ public class PagePanel extends JPanel implements ImageObserver {
 
     /** The image of the rendered PDF page being displayed */
     Image currentImage;
+    /** a screen-compatible copy of currentImage, once it is fully rendered */
+    Image displayImage;
+    /** the image the renderer last reported complete; set without locking
+     *  the panel, since the renderer holds its own locks when it reports */
+    volatile Image finishedImage;
+    /** the cache key of the page in currentImage, or null if not cached */
+    String currentKey;
+    /** the name currentPage is cached under, or null if it isn't cached;
+     *  kept so that showing it again at a new size or clip uses the cache */
+    String currentName;
+    /** the cache of rendered pages, or null for no caching */
+    PageImageCache imageCache;
+    /** the image cached pages were last decoded or scaled into; it may be
+     *  on screen, so it isn't overwritten until the next cache hit */
+    BufferedImage ownedImage;
+    /** an image of ours that isn't on screen, to decode the next cached
+     *  page into instead of allocating one */
+    BufferedImage spareImage;
     /** The current PDFPage that was rendered into currentImage */
     PDFPage currentPage;
     /** the current transform from device space to page space */
@@ -55,6 +84,51 @@ public class PagePanel extends JPanel implements ImageObserver {
     Dimension prevSize;
     /** a flag indicating whether the current page is done or not. */
     Flag flag = new Flag();
+    /** the choices shown over the page, or null if there are none */
+    String[] choices;
+    /** the index of the highlighted choice */
+    int selectedChoice;
+    /** the listener told which choice was made */
+    ChoiceListener choiceListener;
+
+    /**
+     * Gets told which of the choices shown over the page was picked.
+     */
+    public interface ChoiceListener {
+        /**
+         * Called on the event dispatch thread once a choice is made.
+         * @param choice the choice that was picked
+         */
+        void choiceMade(String choice);
+    }
+
+    /**
+     * Moves the highlight and picks a choice while choices are shown.
+     */
+    private KeyAdapter choiceKeys = new KeyAdapter() {
+        public void keyPressed(KeyEvent evt) {
+            if (choices == null) {
+                return;
+            }
+            int code = evt.getKeyCode();
+            if (code == KeyEvent.VK_LEFT || code == KeyEvent.VK_UP) {
+                selectedChoice = (selectedChoice + choices.length - 1) % choices.length;
+                repaint();
+            } else if (code == KeyEvent.VK_RIGHT || code == KeyEvent.VK_DOWN ||
+                    code == KeyEvent.VK_TAB) {
+                selectedChoice = (selectedChoice + 1) % choices.length;
+                repaint();
+            } else if (code == KeyEvent.VK_ENTER || code == KeyEvent.VK_SPACE) {
+                String choice = choices[selectedChoice];
+                ChoiceListener listener = choiceListener;
+                hideChoices();
+                listener.choiceMade(choice);
+            } else if (code == KeyEvent.VK_ESCAPE) {
+                hideChoices();
+            }
+            evt.consume();
+        }
+    };
 
     /**
      * Create a new PagePanel, with a default size of 800 by 600 pixels.
@@ -62,13 +136,66 @@ public class PagePanel extends JPanel implements ImageObserver {
     public PagePanel() {
         setPreferredSize(new Dimension(800, 600));
         setFocusable(true);
+        setFocusTraversalKeysEnabled(false);
+        addKeyListener(choiceKeys);
+    }
+
+    /**
+     * Show a set of choices over the page, to be picked with the keyboard.
+     * Unlike a dialog this works in full screen mode, and the page isn't
+     * rendered again when the choices come or go.
+     * @param options the choices to show
+     * @param listener told which choice was picked; not called if the
+     * choices are dismissed with escape
+     */
+    public void showChoices(String[] options, ChoiceListener listener) {
+        choices = options;
+        choiceListener = listener;
+        selectedChoice = 0;
+        repaint();
+    }
+
+    /**
+     * Take down the choices shown over the page, if any.
+     */
+    public void hideChoices() {
+        choices = null;
+        choiceListener = null;
+        repaint();
+    }
+
+    /**
+     * Whether choices are being shown over the page. Other key handlers
+     * should leave the keyboard alone while they are.
+     */
+    public boolean isShowingChoices() {
+        return choices != null;
+    }
+
+    /**
+     * Set the cache that rendered pages are kept in.
+     * @param imageCache the cache, or null for no caching
+     */
+    public void setImageCache(PageImageCache imageCache) {
+        this.imageCache = imageCache;
     }
 
     /**
      * Stop the generation of any previous page, and draw the new one.
      * @param page the PDFPage to draw.
      */
-    public synchronized void showPage(PDFPage page) {
+    public void showPage(PDFPage page) {
+        showPage(page, null);
+    }
+
+    /**
+     * Stop the generation of any previous page, and draw the new one,
+     * reusing a cached image of it if there is one.
+     * @param page the PDFPage to draw.
+     * @param name the name identifying the page in the image cache, or
+     * null if it shouldn't be cached
+     */
+    public synchronized void showPage(PDFPage page, String name) {
         // stop drawing the previous page
         if (currentPage != null && prevSize != null) {
             currentPage.stop(prevSize.width, prevSize.height, prevClip);
@@ -76,10 +203,13 @@ public class PagePanel extends JPanel implements ImageObserver {
 
         // set up the new page
         currentPage = page;
+        currentName = page == null ? null : name;
 
         if (page == null) {
             // no page
             currentImage = null;
+            displayImage = null;
+            currentKey = null;
             clip = null;
             currentXform = null;
             repaint();
@@ -103,9 +233,43 @@ public class PagePanel extends JPanel implements ImageObserver {
             Dimension pageSize = page.getUnstretchedSize(sz.width, sz.height,
                     useClip);
 
-            // get the new image
-            currentImage = page.getImage(pageSize.width, pageSize.height,
-                    useClip, this);
+            // get the new image, from the cache if we've rendered it before
+            currentKey = null;
+            displayImage = null;
+            BufferedImage cached = null;
+            if (name != null && imageCache != null) {
+                // a larger render of this page can be scaled down rather
+                // than rasterizing the PDF again
+                currentKey = PageImageCache.key(name, pageSize, useClip);
+                BufferedImage spare = spareImage;
+                if (spare == null || spare.getWidth() != pageSize.width ||
+                        spare.getHeight() != pageSize.height) {
+                    spare = new BufferedImage(pageSize.width, pageSize.height,
+                            BufferedImage.TYPE_INT_RGB);
+                }
+                cached = imageCache.getScaled(name, pageSize, useClip, spare);
+                if (cached == spare) {
+                    // the previous one is off screen once this is shown
+                    spareImage = ownedImage;
+                    ownedImage = spare;
+                } else {
+                    spareImage = spare;
+                }
+            }
+            if (cached != null) {
+                currentImage = PageImages.toCompatible(cached,
+                        getGraphicsConfiguration());
+                displayImage = currentImage;
+                flag.set();
+            } else {
+                currentImage = page.getImage(pageSize.width, pageSize.height,
+                        useClip, this);
+                // a render that was already done reports completion from
+                // inside getImage, before currentImage is assigned
+                if (finishedImage == currentImage) {
+                    imageDoneLater(currentImage);
+                }
+            }
 
             // calculate the transform from screen to page space
             currentXform = page.getInitialTransform(pageSize.width,
@@ -124,6 +288,57 @@ public class PagePanel extends JPanel implements ImageObserver {
     }
 
 
+    /**
+     * Render a page at the size this panel would show it and put it in the
+     * image cache, so that showing it later is immediate. The page is
+     * rendered on the calling thread into an image of our own rather than
+     * through {@link PDFPage#getImage}, so it never enters the page's own
+     * image cache or waits on the renderer the panel is showing with.
+     * Nothing is done if the page is already cached or the panel has no
+     * size yet.
+     * @param page the PDFPage to render
+     * @param name the name identifying the page in the image cache
+     * @return true if the page was rendered and cached, false if there was
+     * nothing to do or it didn't render
+     */
+    public boolean prefetchPage(PDFPage page, String name) {
+        Dimension pageSize;
+        Rectangle2D useClip;
+        synchronized (this) {
+            Dimension sz = getSize();
+            if (imageCache == null || sz.width + sz.height == 0) {
+                return false;
+            }
+            useClip = clip;
+            if (clip != null && currentXform != null) {
+                useClip = currentXform.createTransformedShape(clip).getBounds2D();
+            }
+            pageSize = page.getUnstretchedSize(sz.width, sz.height, useClip);
+        }
+        String key = PageImageCache.key(name, pageSize, useClip);
+        if (imageCache.contains(key)) {
+            return false;
+        }
+        BufferedImage img = new BufferedImage(pageSize.width, pageSize.height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        PDFRenderer renderer;
+        try {
+            renderer = new PDFRenderer(page, g,
+                    new Rectangle(0, 0, pageSize.width, pageSize.height),
+                    useClip, Color.white);
+            renderer.go(true);
+        } finally {
+            g.dispose();
+        }
+        int status = renderer.getStatus();
+        if (status == Watchable.ERROR || status == Watchable.STOPPED) {
+            return false;
+        }
+        imageCache.put(key, PageImages.toCompatible(img, getGraphicsConfiguration()));
+        return true;
+    }
+
     /**
      * Draw the image.
      */
@@ -143,17 +358,71 @@ public class PagePanel extends JPanel implements ImageObserver {
             offy = (sz.height - imhgt) / 2;
             if ((imwid == sz.width && imhgt <= sz.height) ||
                     (imhgt == sz.height && imwid <= sz.width)) {
-                g.drawImage(currentImage, offx, offy, this);
+                Image img = displayImage;
+                g.drawImage(img != null ? img : currentImage, offx, offy, this);
             } else {
                 // the image is bogus.  try again, or give up.
                 if (currentPage != null) {
-                    showPage(currentPage);
+                    showPage(currentPage, currentName);
                 }
                 g.setColor(Color.red);
                 g.drawLine(0, 0, getWidth(), getHeight());
                 g.drawLine(0, getHeight(), getWidth(), 0);
             }
         }
+        String[] options = choices;
+        if (options != null) {
+            paintChoices((Graphics2D) g, options, selectedChoice);
+        }
+    }
+
+    /**
+     * Draw the choices in a translucent box along the bottom of the panel,
+     * with the selected one highlighted.
+     */
+    private void paintChoices(Graphics2D g, String[] options, int selected) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        int size = Math.max(12, getHeight() / 30);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, size));
+        FontMetrics fm = g.getFontMetrics();
+        String prompt = "Select which page to jump to next:";
+        int pad = size / 2;
+        int boxWidth = fm.stringWidth("0000") + 2 * pad;
+        int rowHeight = fm.getHeight() + 2 * pad;
+        int width = Math.max(fm.stringWidth(prompt),
+                options.length * (boxWidth + pad) - pad) + 4 * pad;
+        int height = fm.getHeight() + rowHeight + 4 * pad;
+        int x = (getWidth() - width) / 2;
+        int y = getHeight() - height - 2 * size;
+
+        Composite oldComposite = g.getComposite();
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.8f));
+        g.setColor(Color.darkGray);
+        g.fillRoundRect(x, y, width, height, pad * 2, pad * 2);
+        g.setComposite(oldComposite);
+
+        g.setColor(Color.white);
+        g.drawString(prompt, x + (width - fm.stringWidth(prompt)) / 2,
+                y + pad + fm.getAscent());
+        int bx = x + (width - (options.length * (boxWidth + pad) - pad)) / 2;
+        int by = y + fm.getHeight() + 2 * pad;
+        for (int i = 0; i < options.length; i++) {
+            if (i == selected) {
+                g.setColor(Color.white);
+                g.fillRoundRect(bx, by, boxWidth, rowHeight, pad, pad);
+                g.setColor(Color.black);
+            } else {
+                g.setColor(Color.white);
+                g.drawRoundRect(bx, by, boxWidth, rowHeight, pad, pad);
+            }
+            String option = options[i].trim();
+            g.drawString(option, bx + (boxWidth - fm.stringWidth(option)) / 2,
+                    by + pad + fm.getAscent());
+            bx += boxWidth + pad;
+        }
     }
 
     /**
@@ -194,6 +463,10 @@ public class PagePanel extends JPanel implements ImageObserver {
         if ((infoflags & (SOMEBITS | ALLBITS)) != 0) {
             repaint(x + offx, y + offy, width, height);
         }
+        if ((infoflags & ALLBITS) != 0) {
+            finishedImage = img;
+            imageDoneLater(img);
+        }
         if ((infoflags & (ALLBITS | ERROR | ABORT)) != 0) {
             flag.set();
             return false;
@@ -202,12 +475,49 @@ public class PagePanel extends JPanel implements ImageObserver {
         }
     }
 
+    /**
+     * Hands a fully rendered page to the event dispatch thread. This is
+     * called from the renderer while it holds its own locks, so it mustn't
+     * lock the panel itself.
+     */
+    private void imageDoneLater(final Image img) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                imageDone(img);
+            }
+        });
+    }
+
+    /**
+     * Converts a fully rendered page once into a screen-compatible image for
+     * painting, and hands it to the image cache to add in the background.
+     * Runs on the event dispatch thread.
+     */
+    private void imageDone(Image img) {
+        String key;
+        BufferedImage compatible;
+        synchronized (this) {
+            if (img != currentImage || displayImage != null) {
+                return;
+            }
+            key = currentKey;
+            compatible = PageImages.toCompatible(img, getGraphicsConfiguration());
+            displayImage = compatible;
+        }
+        repaint();
+        if (key != null && imageCache != null) {
+            // cache the compatible copy, so a hit can be shown without
+            // converting it again
+            imageCache.putLater(key, compatible);
+        }
+    }
+
     /**
      * Set the desired clipping region (in screen coordinates), and redraw
      * the image.
      */
     public void setClip(Rectangle2D clip) {
         this.clip = clip;
-        showPage(currentPage);
+        showPage(currentPage, currentName);
     }
 }
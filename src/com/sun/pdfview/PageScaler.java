@@ -0,0 +1,177 @@
+package com.sun.pdfview;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Shrinks page images with an area-average filter: every destination pixel
+ * is the average of the source pixels it covers, weighted by how much of
+ * each it covers. This keeps thin lines and small text legible where
+ * nearest-neighbour or bilinear sampling would drop or alias them.
+ * <p>
+ * Large images are split into bands of rows that are scaled in parallel.
+ * Pages are opaque, so only the colour channels are filtered and the result
+ * is a TYPE_INT_RGB image.
+ */
+public final class PageScaler {
+
+    /** the fewest destination rows worth handing to another thread */
+    private static final int MIN_BAND = 32;
+
+    private PageScaler() {
+    }
+
+    /**
+     * Scales an image down to the given size.
+     * @param src the image to scale
+     * @param width the new width, no larger than the source's
+     * @param height the new height, no larger than the source's
+     * @return the scaled image
+     * @throws IllegalArgumentException if either dimension would grow
+     */
+    public static BufferedImage scale(final BufferedImage src, int width, int height) {
+        final int srcW = src.getWidth();
+        final int srcH = src.getHeight();
+        if (width <= 0 || height <= 0 || width > srcW || height > srcH) {
+            throw new IllegalArgumentException("Can't scale " + srcW + "x" + srcH +
+                    " to " + width + "x" + height);
+        }
+        BufferedImage dst = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        scale(src, dst);
+        return dst;
+    }
+
+    /**
+     * Scales an image down into an existing image, so that repeated scaling
+     * to the same size needn't allocate a new one each time.
+     * @param src the image to scale
+     * @param dst a TYPE_INT_RGB image no larger than the source
+     * @throws IllegalArgumentException if either dimension would grow, or
+     * the destination isn't TYPE_INT_RGB
+     */
+    public static void scale(final BufferedImage src, BufferedImage dst) {
+        final int srcW = src.getWidth();
+        final int srcH = src.getHeight();
+        int width = dst.getWidth();
+        int height = dst.getHeight();
+        if (width > srcW || height > srcH ||
+                dst.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("Can't scale " + srcW + "x" + srcH +
+                    " to " + width + "x" + height + " of type " + dst.getType());
+        }
+        final int[] out = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        final Filter xf = new Filter(srcW, width);
+        final Filter yf = new Filter(srcH, height);
+        ImageWorkers.runBands(height, MIN_BAND, new ImageWorkers.Band() {
+            public void run(int from, int to) {
+                scaleRows(src, srcW, xf, yf, out, from, to);
+            }
+        });
+    }
+
+    /**
+     * Scales one band of destination rows. Each row is built by summing the
+     * horizontally filtered source rows under it, weighted by coverage.
+     */
+    private static void scaleRows(BufferedImage src, int srcW, Filter xf, Filter yf,
+            int[] out, int from, int to) {
+        int dstW = xf.size;
+        int[] srcRow = new int[srcW];
+        float[] filtered = new float[dstW * 3];
+        float[] acc = new float[dstW * 3];
+        for (int y = from; y < to; y++) {
+            Arrays.fill(acc, 0f);
+            int start = yf.start[y];
+            int off = yf.offset[y];
+            for (int i = 0; i < yf.count[y]; i++) {
+                src.getRGB(0, start + i, srcW, 1, srcRow, 0, srcW);
+                filterRow(srcRow, xf, filtered);
+                float wy = yf.weights[off + i];
+                for (int j = 0; j < acc.length; j++) {
+                    acc[j] += wy * filtered[j];
+                }
+            }
+            int base = y * dstW;
+            for (int x = 0, j = 0; x < dstW; x++, j += 3) {
+                out[base + x] = clamp(acc[j]) << 16 | clamp(acc[j + 1]) << 8 |
+                        clamp(acc[j + 2]);
+            }
+        }
+    }
+
+    /**
+     * Filters a source row down to the destination width, writing the
+     * red, green and blue of each destination pixel in turn.
+     */
+    private static void filterRow(int[] row, Filter xf, float[] dst) {
+        for (int x = 0, j = 0; x < xf.size; x++, j += 3) {
+            float r = 0, g = 0, b = 0;
+            int start = xf.start[x];
+            int off = xf.offset[x];
+            for (int i = 0; i < xf.count[x]; i++) {
+                int rgb = row[start + i];
+                float w = xf.weights[off + i];
+                r += w * ((rgb >> 16) & 0xff);
+                g += w * ((rgb >> 8) & 0xff);
+                b += w * (rgb & 0xff);
+            }
+            dst[j] = r;
+            dst[j + 1] = g;
+            dst[j + 2] = b;
+        }
+    }
+
+    private static int clamp(float v) {
+        int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : i > 255 ? 255 : i;
+    }
+
+    /**
+     * The source pixels covering each destination pixel along one axis,
+     * and how much of each is covered. The weights for a destination pixel
+     * add up to one.
+     */
+    private static class Filter {
+        /** the number of destination pixels */
+        final int size;
+        /** the first source pixel under each destination pixel */
+        final int[] start;
+        /** the number of source pixels under each destination pixel */
+        final int[] count;
+        /** where each destination pixel's weights begin */
+        final int[] offset;
+        /** the weights of all source pixels, grouped by destination pixel */
+        final float[] weights;
+
+        Filter(int srcSize, int dstSize) {
+            size = dstSize;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            offset = new int[dstSize];
+            double scale = (double) srcSize / dstSize;
+            // each destination pixel overlaps at most ceil(scale) + 1 sources
+            float[] w = new float[dstSize * ((int) Math.ceil(scale) + 1)];
+            int n = 0;
+            for (int d = 0; d < dstSize; d++) {
+                double lo = d * scale;
+                double hi = Math.min(srcSize, (d + 1) * scale);
+                int first = (int) lo;
+                int last = Math.min(srcSize, (int) Math.ceil(hi));
+                start[d] = first;
+                offset[d] = n;
+                for (int s = first; s < last; s++) {
+                    double cover = Math.min(hi, s + 1) - Math.max(lo, s);
+                    if (cover > 0) {
+                        w[n++] = (float) (cover / scale);
+                        count[d]++;
+                    } else if (count[d] == 0) {
+                        start[d]++;
+                    }
+                }
+            }
+            weights = w;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.sun.pdfview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses and renders the pages a reader is most likely to go to next while
+ * the viewer is idle, so that turning to them is immediate.
+ * <p>
+ * The chance of going from one page to another comes from the
+ * {@link ReadingLog}, with every branch listed in the page's N.txt (or just
+ * the following page if there isn't one) counted once more so that pages
+ * nobody has read yet still get a sensible guess. Pages up to two turns
+ * ahead are considered, most likely first. Each idle spell warms at most
+ * {@link #MAX_PAGES} pages and stops starting new ones after
+ * {@link #MAX_MILLIS}, on a single low priority thread.
+ */
+public class PageWarmer {
+
+    /** how long to wait after a page is shown before warming */
+    private static final long IDLE_MILLIS = 500;
+    /** the most pages to warm after each page turn */
+    private static final int MAX_PAGES = 4;
+    /** the longest to keep warming after each page turn */
+    private static final long MAX_MILLIS = 3000;
+    /** pages less likely than this aren't worth warming */
+    private static final double MIN_CHANCE = 0.1;
+
+    /** the viewer whose caches get warmed */
+    private final PDFViewer viewer;
+    /** the page last shown, or -1 for none */
+    private int shownPage = -1;
+    /** the directory holding the book being read */
+    private File bookDir;
+    /** the reading log for the book, or null if there isn't one */
+    private ReadingLog log;
+    /** bumped on every page turn, so a stale warmup can tell to stop */
+    private int generation;
+
+    /**
+     * Create a new PageWarmer, and start its thread.
+     * @param viewer the viewer whose caches get warmed
+     */
+    public PageWarmer(PDFViewer viewer) {
+        this.viewer = viewer;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                warmForever();
+            }
+        }, getClass().getName());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Tell the warmer a page has been shown. Warming for the previous page
+     * stops, and warming for this one starts once the viewer is idle.
+     * @param bookDir the directory holding the book
+     * @param page the page number shown
+     * @param log the book's reading log, or null if there isn't one
+     */
+    public synchronized void pageShown(File bookDir, int page, ReadingLog log) {
+        this.bookDir = bookDir;
+        this.shownPage = page;
+        this.log = log;
+        generation++;
+        notifyAll();
+    }
+
+    /**
+     * Wait for page turns, and warm the likely next pages after each.
+     */
+    private void warmForever() {
+        int done = 0;
+        while (true) {
+            File dir;
+            int page;
+            ReadingLog pageLog;
+            int gen;
+            synchronized (this) {
+                try {
+                    while (generation == done) {
+                        wait();
+                    }
+                    // wait until the reader stops turning pages
+                    do {
+                        gen = generation;
+                        wait(IDLE_MILLIS);
+                    } while (gen != generation);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                done = gen;
+                dir = bookDir;
+                page = shownPage;
+                pageLog = log;
+            }
+            if (page >= 0) {
+                try {
+                    warm(dir, page, pageLog, gen);
+                } catch (Exception e) {
+                    // warming is only ever an optimization
+                    Logger.getLogger(PageWarmer.class.getName()).log(Level.FINE,
+                            "Couldn't warm pages after " + page, e);
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isStale(int gen) {
+        return gen != generation;
+    }
+
+    /**
+     * Warm the pages most likely to follow a page.
+     */
+    private void warm(File dir, int page, ReadingLog pageLog, int gen) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Candidate> candidates = rank(dir, page, pageLog);
+        int warmed = 0;
+        for (Candidate c : candidates) {
+            if (warmed == MAX_PAGES || isStale(gen) ||
+                    System.currentTimeMillis() - start > MAX_MILLIS) {
+                break;
+            }
+            File pdf = new File(dir, "" + c.page + ".pdf");
+            // pages already warm don't use up a slot
+            if (pdf.exists() && viewer.prefetch(pdf)) {
+                warmed++;
+            }
+        }
+    }
+
+    /**
+     * Gets the pages up to two turns ahead of a page, most likely first,
+     * leaving out the unlikely ones.
+     */
+    private List<Candidate> rank(File dir, int page, ReadingLog pageLog) throws IOException {
+        Map<Integer, Double> chances = new HashMap<Integer, Double>();
+        Map<Integer, Double> first = nextChances(dir, page, pageLog);
+        for (Map.Entry<Integer, Double> e : first.entrySet()) {
+            addChance(chances, e.getKey(), e.getValue());
+            if (e.getValue() < MIN_CHANCE) {
+                continue;
+            }
+            Map<Integer, Double> second = nextChances(dir, e.getKey(), pageLog);
+            for (Map.Entry<Integer, Double> e2 : second.entrySet()) {
+                addChance(chances, e2.getKey(), e.getValue() * e2.getValue());
+            }
+        }
+        chances.remove(page);
+        List<Candidate> ranked = new ArrayList<Candidate>();
+        for (Map.Entry<Integer, Double> e : chances.entrySet()) {
+            if (e.getValue() >= MIN_CHANCE) {
+                ranked.add(new Candidate(e.getKey(), e.getValue()));
+            }
+        }
+        Collections.sort(ranked, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.chance, a.chance);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Gets the chance of going from a page to each page that follows it.
+     */
+    private Map<Integer, Double> nextChances(File dir, int page, ReadingLog pageLog)
+            throws IOException {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (int next : viewer.getNextPages(dir, page)) {
+            counts.put(next, 1);
+        }
+        if (pageLog != null) {
+            for (Map.Entry<Integer, Integer> e : pageLog.getTransitions(page).entrySet()) {
+                Integer prior = counts.get(e.getKey());
+                counts.put(e.getKey(), e.getValue() + (prior == null ? 0 : prior));
+            }
+        }
+        int total = 0;
+        for (int count : counts.values()) {
+            total += count;
+        }
+        Map<Integer, Double> chances = new HashMap<Integer, Double>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            chances.put(e.getKey(), (double) e.getValue() / total);
+        }
+        return chances;
+    }
+
+    private static void addChance(Map<Integer, Double> chances, int page, double chance) {
+        Double old = chances.get(page);
+        chances.put(page, old == null ? chance : old + chance);
+    }
+
+    /**
+     * A page that might be read soon, and how likely it is.
+     */
+    private static class Candidate {
+        final int page;
+        final double chance;
+
+        Candidate(int page, double chance) {
+            this.page = page;
+            this.chance = chance;
+        }
+    }
+}
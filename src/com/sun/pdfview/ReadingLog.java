@@ -0,0 +1,224 @@
+package com.sun.pdfview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records which page readers go to from each page of a book, so we can
+ * tell which branches are the popular ones. Only forward turns are
+ * recorded; going back along the story path says nothing about which
+ * branch a reader prefers.
+ * <p>
+ * The log is a file of fixed six byte records, each holding three
+ * unsigned shorts: the page turned from, the page turned to and a count.
+ * Every page turn appends one record with a count of one. When the file
+ * grows past {@link #COMPACT_BYTES} it is rewritten with one record per
+ * distinct transition, so it stays small however long it is used. If any
+ * count would overflow, all counts are halved, which also lets old habits
+ * fade.
+ */
+public class ReadingLog {
+
+    /** the log size beyond which it gets compacted on load */
+    static final int COMPACT_BYTES = 16 * 1024;
+    /** the largest count or page number a record can hold */
+    private static final int MAX_VALUE = 0xffff;
+
+    /** the log file */
+    private final File file;
+    /** the number of times each transition was made, by page turned from */
+    private final Map<Integer, Map<Integer, Integer>> counts =
+            new HashMap<Integer, Map<Integer, Integer>>();
+
+    /**
+     * Open the reading log in a file, loading what it already holds.
+     * @param file the log file, which needn't exist yet
+     */
+    public ReadingLog(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Gets the log file for a book, kept under the user's home directory
+     * since the book itself may be read-only.
+     * @param bookDir the directory holding the book's pages
+     */
+    public static File forBook(File bookDir) {
+        return PDFViewer.getBookDataFile(bookDir, ".log");
+    }
+
+    /**
+     * Record a page turn.
+     * @param from the page turned from
+     * @param to the page turned to
+     */
+    public synchronized void record(int from, int to) {
+        if (from < 0 || to < 0 || from > MAX_VALUE || to > MAX_VALUE) {
+            return;
+        }
+        add(from, to, 1);
+        try {
+            file.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(
+                    new FileOutputStream(file, true));
+            try {
+                writeRecord(out, from, to, 1);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            Logger.getLogger(ReadingLog.class.getName()).log(Level.WARNING,
+                    "Couldn't write reading log " + file, ioe);
+        }
+    }
+
+    /**
+     * Gets how often each page was turned to from a page.
+     * @param from the page turned from
+     * @return counts by page turned to, most frequent first; empty if the
+     * page was never turned from
+     */
+    public synchronized Map<Integer, Integer> getTransitions(int from) {
+        Map<Integer, Integer> row = counts.get(from);
+        if (row == null) {
+            return Collections.emptyMap();
+        }
+        List<Map.Entry<Integer, Integer>> entries =
+                new ArrayList<Map.Entry<Integer, Integer>>(row.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Integer, Integer>>() {
+            public int compare(Map.Entry<Integer, Integer> a, Map.Entry<Integer, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        Map<Integer, Integer> sorted = new LinkedHashMap<Integer, Integer>();
+        for (Map.Entry<Integer, Integer> e : entries) {
+            sorted.put(e.getKey(), e.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * Read the log into memory, compacting it if it has grown too long.
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        int records = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                while (true) {
+                    int from = in.readUnsignedShort();
+                    int to = in.readUnsignedShort();
+                    int count = in.readUnsignedShort();
+                    add(from, to, count);
+                    records++;
+                }
+            } catch (EOFException eof) {
+                // done; a record cut short by a crash is dropped
+            } finally {
+                in.close();
+            }
+            if (file.length() > COMPACT_BYTES && records > distinct()) {
+                compact();
+            }
+        } catch (IOException ioe) {
+            Logger.getLogger(ReadingLog.class.getName()).log(Level.WARNING,
+                    "Couldn't read reading log " + file, ioe);
+        }
+    }
+
+    /**
+     * Rewrite the log with one record per transition.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<Integer, Map<Integer, Integer>> row : counts.entrySet()) {
+                for (Map.Entry<Integer, Integer> e : row.getValue().entrySet()) {
+                    writeRecord(out, row.getKey(), e.getKey(), e.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+
+    /**
+     * Add to a transition's count, halving every count if it would
+     * no longer fit in a record.
+     */
+    private void add(int from, int to, int count) {
+        Map<Integer, Integer> row = counts.get(from);
+        if (row == null) {
+            row = new HashMap<Integer, Integer>();
+            counts.put(from, row);
+        }
+        Integer old = row.get(to);
+        int total = (old == null ? 0 : old) + count;
+        row.put(to, total);
+        if (total > MAX_VALUE) {
+            halve();
+        }
+    }
+
+    /**
+     * Halve every count, dropping transitions that fall to zero.
+     */
+    private void halve() {
+        for (Map<Integer, Integer> row : counts.values()) {
+            for (Iterator<Map.Entry<Integer, Integer>> it =
+                    row.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer, Integer> e = it.next();
+                if (e.getValue() < 2) {
+                    it.remove();
+                } else {
+                    e.setValue(e.getValue() / 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct transitions.
+     */
+    private int distinct() {
+        int n = 0;
+        for (Map<Integer, Integer> row : counts.values()) {
+            n += row.size();
+        }
+        return n;
+    }
+
+    private static void writeRecord(DataOutputStream out, int from, int to,
+            int count) throws IOException {
+        out.writeShort(from);
+        out.writeShort(to);
+        out.writeShort(count);
+    }
+}